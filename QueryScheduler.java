@@ -0,0 +1,190 @@
+package uk5;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs encrypted searches on a shared index under a circuit budget.
+ *
+ * The cost of each query is estimated from the edges on its path and their data lengths before it is queued, without
+ * running any circuit. Queries that cost more than <tt>maxQueryCost</tt> are rejected, and so are queries that would
+ * bring the cost waiting in the queue above <tt>maxQueuedCost</tt>, which bounds how long an admitted query waits.
+ * Queries longer than the paths of a depth-bounded index are rejected too. A query runs on the version of the index
+ * that was published when it was admitted.
+ *
+ * Admitted queries run on <tt>maxConcurrent</tt> threads. A search runs its circuits one after the other, so this is
+ * also the max number of circuits running at the same time. Higher priorities run first. Within a priority, the
+ * tenants share the circuits in proportion to the cost of their queries (start-time fair queuing): a tenant sending
+ * many or long queries waits behind the others instead of starving them.
+ */
+public class QueryScheduler {
+
+    private final VersionedIndex index;
+    private final int maxQueryCost;
+    private final long maxQueuedCost;
+    private final Thread[] runners;
+
+    private final Object lock = new Object();
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    /**
+     * The virtual finish time of the last query queued by each tenant
+     */
+    private final Map<String, Long> tenantFinish = new HashMap<>();
+    /**
+     * The virtual start time of the last query started
+     */
+    private long virtualTime = 0;
+    private long queuedCost = 0;
+    private long submitted = 0;
+    private boolean shutdown = false;
+
+    /**
+     * @param index the encrypted index to search
+     * @param maxConcurrent the max number of queries, and circuits, running at the same time
+     * @param maxQueryCost the max estimated cost of a single query
+     * @param maxQueuedCost the max estimated cost of all the queries waiting to run
+     */
+    public QueryScheduler(VersionedIndex index, int maxConcurrent, int maxQueryCost, long maxQueuedCost) {
+        if (maxConcurrent < 1 || maxQueryCost < 1 || maxQueuedCost < maxQueryCost) {
+            throw new IllegalArgumentException("Invalid budget: " + maxConcurrent + " concurrent, " + maxQueryCost + " per query, " + maxQueuedCost + " queued");
+        }
+        this.index = index;
+        this.maxQueryCost = maxQueryCost;
+        this.maxQueuedCost = maxQueuedCost;
+        this.runners = new Thread[maxConcurrent];
+        for (int i = 0; i < maxConcurrent; i++) {
+            runners[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runQueries();
+                }
+            }, "query-runner-" + i);
+            runners[i].start();
+        }
+    }
+
+    /**
+     * Queues an encrypted search.
+     *
+     * @param tenant the client the query is accounted to
+     * @param priority the priority of the query, higher runs first
+     * @param query the query to search for
+     * @param position the position of the query
+     * @return the future seq;matchCount results of encryptedSearch
+     * @throws RejectedExecutionException if the query is over budget or the scheduler is shut down
+     */
+    public Future<ArrayList<String>> submit(String tenant, int priority, final String query, final String position) throws RejectedExecutionException {
+        final VersionedIndex.Version version = index.pin();
+        int cost;
+        try {
+            cost = Math.max(1, version.estimateSearchCost(query));
+        } catch (IllegalArgumentException e) {
+            throw new RejectedExecutionException(e.getMessage(), e);
+        }
+        if (cost > maxQueryCost) {
+            throw new RejectedExecutionException("The estimated cost of the query is " + cost + ", the budget is " + maxQueryCost);
+        }
+        Task task = new Task(new Callable<ArrayList<String>>() {
+            @Override
+            public ArrayList<String> call() throws Exception {
+                return version.encryptedSearch(query, position);
+            }
+        }, priority, cost);
+
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The scheduler is shut down");
+            }
+            if (queuedCost + cost > maxQueuedCost) {
+                throw new RejectedExecutionException("The queue is full: " + queuedCost + " queued, " + cost + " requested, " + maxQueuedCost + " allowed");
+            }
+            Long lastFinish = tenantFinish.get(tenant);
+            task.start = Math.max(virtualTime, lastFinish == null ? 0 : lastFinish);
+            task.finish = task.start + cost;
+            task.order = submitted++;
+            tenantFinish.put(tenant, task.finish);
+            queuedCost += cost;
+            queue.add(task);
+            lock.notify();
+        }
+        return task;
+    }
+
+    /**
+     * Stops accepting queries. The queries already queued still run.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the scheduler is shut down and all the queued queries have run.
+     */
+    public void awaitTermination() throws InterruptedException {
+        for (Thread runner : runners) {
+            runner.join();
+        }
+    }
+
+    private void runQueries() {
+        while (true) {
+            Task task;
+            synchronized (lock) {
+                while (queue.isEmpty() && !shutdown) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                task = queue.poll();
+                queuedCost -= task.cost;
+                virtualTime = Math.max(virtualTime, task.start);
+                if (tenantFinish.size() > 1024) {
+                    // forget the tenants that are not ahead of the others anymore
+                    Iterator<Long> it = tenantFinish.values().iterator();
+                    while (it.hasNext()) {
+                        if (it.next() <= virtualTime) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * A queued query, ordered by priority, then by virtual start time, then by submission order
+     */
+    private static class Task extends FutureTask<ArrayList<String>> implements Comparable<Task> {
+
+        private final int priority;
+        private final int cost;
+        private long start;
+        private long finish;
+        private long order;
+
+        Task(Callable<ArrayList<String>> callable, int priority, int cost) {
+            super(callable);
+            this.priority = priority;
+            this.cost = cost;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            } else if (start != other.start) {
+                return start < other.start ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
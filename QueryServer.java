@@ -0,0 +1,378 @@
+package uk5;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Serves searches over an encrypted index that is built once, so that the latency of a query is only
+ * the cost of the traversal and of the circuits it needs.
+ *
+ * Each request pins the latest version of the index when it starts running, so sequences can be inserted
+ * into the index while it is being served.
+ *
+ * Clients connect to a socket bound to the loopback address and send one request per line:
+ *
+ * SEARCH word              substring search, answered with the indexes of the matching sequences; trusted-server
+ *                          mode only, the labels on the path are decrypted in plain text without circuits
+ * ESEARCH query position [priority]
+ *                          set-maximal search over the encrypted index, answered with the seq;matchCount results
+ * QUIT                     closes the connection once the pending responses have been sent
+ * SHUTDOWN                 stops the server once the pending requests have been answered
+ *
+ * Each request gets one response line, either "OK" followed by the comma separated results or "ERR" followed
+ * by a message. Requests can be pipelined and the responses are sent back in request order.
+ *
+ * ESEARCH requests go through a QueryScheduler, so that their circuits stay within its budget: a query rejected
+ * at admission is answered with "ERR". The tenant of a query is the address of the client, so opening more
+ * connections does not earn a client a bigger share. While the server only listens on the loopback address, all
+ * its clients share that single tenant and are served in arrival order within a priority. The requested priority is clamped to [0, maxPriority],
+ * which the server is configured with, so that no client can jump ahead of the others by more than the
+ * operator allows. The other requests run on a bounded
+ * pool of workers. When the pool is saturated the connection that submits a request runs it itself, which stops
+ * it from reading more requests until it catches up.
+ */
+public class QueryServer {
+
+    private final VersionedIndex index;
+    private final QueryScheduler scheduler;
+    private final int maxPriority;
+    private final int pipelineDepth;
+    private final ThreadPoolExecutor workers;
+    private final ServerSocket serverSocket;
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile boolean running = true;
+
+    /**
+     * @param index the encrypted index to search
+     * @param scheduler the scheduler running the ESEARCH requests on the index, shut down with the server
+     * @param maxPriority the highest priority an ESEARCH request can get, 0 to ignore the requested priorities
+     * @param port the local port to listen on, 0 for any free port
+     * @param workerCount the number of queries run at the same time
+     * @param pipelineDepth the max number of requests waiting to be run, per connection and in the worker pool
+     */
+    public QueryServer(VersionedIndex index, QueryScheduler scheduler, int maxPriority, int port, int workerCount, int pipelineDepth) throws IOException {
+        if (maxPriority < 0) {
+            throw new IllegalArgumentException("maxPriority must not be negative. Got " + maxPriority);
+        }
+        this.index = index;
+        this.scheduler = scheduler;
+        this.maxPriority = maxPriority;
+        this.pipelineDepth = pipelineDepth;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(pipelineDepth), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("The server is shutting down");
+                }
+                r.run();
+            }
+        });
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        if (!running) {
+                            socket.close();
+                            return;
+                        }
+                        Connection connection = new Connection(socket);
+                        connections.add(connection);
+                        connection.start();
+                    } catch (IOException e) {
+                        if (running) {
+                            System.err.println("Cannot accept connection: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, "query-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * Stops accepting connections, answers the requests already received and releases the workers.
+     */
+    public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            if (!running) {
+                terminated.await();
+                return;
+            }
+            running = false;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // nothing left to accept anyway
+        }
+        for (Connection connection : connections) {
+            connection.stopReading();
+        }
+        for (Connection connection : connections) {
+            connection.join();
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        scheduler.shutdown();
+        scheduler.awaitTermination();
+        terminated.countDown();
+    }
+
+    /**
+     * Blocks until the server has been shut down.
+     */
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * Runs a single request line, other than ESEARCH, and returns its response line.
+     */
+    String execute(String request) throws Exception {
+        String[] args = request.trim().split("\\s+");
+        if (args[0].equals("SEARCH") && args.length == 2) {
+            return okResponse(index.pin().search(args[1]));
+        }
+        return "ERR Unknown request: " + request;
+    }
+
+    /**
+     * Returns the OK response line listing the given results.
+     */
+    private static String okResponse(Collection<?> results) {
+        StringBuilder response = new StringBuilder("OK ");
+        for (Object result : results) {
+            response.append(result).append(',');
+        }
+        if (response.charAt(response.length() - 1) == ',') {
+            response.setLength(response.length() - 1);
+        }
+        return response.toString().trim();
+    }
+
+    /**
+     * A client connection: a reader thread submits the requests and a writer thread sends the responses back in order.
+     */
+    private class Connection {
+
+        private final Socket socket;
+        /**
+         * The responses in request order: a response line, or the results of an ESEARCH
+         */
+        private final BlockingQueue<Future<?>> pending = new ArrayBlockingQueue<>(pipelineDepth);
+        private final Thread reader;
+        private final Thread writer;
+        private final Future<String> endOfRequests = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() {
+                return null;
+            }
+        });
+
+        Connection(Socket socket) {
+            this.socket = socket;
+            this.reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "query-reader-" + socket.getPort());
+            this.writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, "query-writer-" + socket.getPort());
+        }
+
+        void start() {
+            reader.start();
+            writer.start();
+        }
+
+        void stopReading() {
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                // the connection is already closed
+            }
+        }
+
+        void join() throws InterruptedException {
+            reader.join();
+            writer.join();
+        }
+
+        private void read() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    final String request = line.trim();
+                    if (request.isEmpty()) {
+                        continue;
+                    } else if (request.equals("QUIT")) {
+                        break;
+                    } else if (request.equals("SHUTDOWN")) {
+                        pending.put(completed("OK"));
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    shutdown();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        }, "query-shutdown").start();
+                        break;
+                    }
+                    String[] args = request.split("\\s+");
+                    if (args[0].equals("ESEARCH") && (args.length == 3 || args.length == 4)) {
+                        try {
+                            int priority = args.length == 4 ? Math.max(0, Math.min(maxPriority, Integer.parseInt(args[3]))) : 0;
+                            pending.put(scheduler.submit(socket.getInetAddress().getHostAddress(), priority, args[1], args[2]));
+                        } catch (NumberFormatException e) {
+                            pending.put(completed("ERR Invalid priority: " + args[3]));
+                        } catch (RejectedExecutionException e) {
+                            pending.put(completed("ERR " + e.getMessage()));
+                        }
+                        continue;
+                    }
+                    try {
+                        pending.put(workers.submit(new Callable<String>() {
+                            @Override
+                            public String call() throws Exception {
+                                return execute(request);
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        pending.put(completed("ERR " + e.getMessage()));
+                    }
+                }
+            } catch (SocketException e) {
+                // the client went away, answer what was already received
+            } catch (IOException e) {
+                System.err.println("Cannot read request: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    pending.put(endOfRequests);
+                } catch (InterruptedException e) {
+                    writer.interrupt();
+                }
+            }
+        }
+
+        private void write() {
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                for (Future<?> response = pending.take(); response != endOfRequests; response = pending.take()) {
+                    String line;
+                    try {
+                        Object result = response.get();
+                        line = result instanceof String ? (String) result : okResponse((Collection<?>) result);
+                    } catch (ExecutionException e) {
+                        line = "ERR " + e.getCause();
+                    }
+                    out.write(line);
+                    out.write('\n');
+                    // send the responses in batches while the client keeps pipelining
+                    if (pending.isEmpty()) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Cannot send response: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // nothing to release
+                }
+                connections.remove(this);
+            }
+        }
+
+        private Future<String> completed(String response) {
+            FutureTask<String> task = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, response);
+            task.run();
+            return task;
+        }
+    }
+
+    /**
+     * Builds the index of the given sequence file, then serves it until a SHUTDOWN request or a signal.
+     *
+     * Arguments: sequence file, key file, port, number of workers, max cost of a query, max cost of the queued queries,
+     * max priority of a query.
+     * The workers run the SEARCH requests, and as many ESEARCH requests can run at the same time.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: QueryServer <sequence file> <key file> [port] [workers] [max query cost] [max queued cost] [max priority]");
+            return;
+        }
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int workerCount = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int maxQueryCost = args.length > 4 ? Integer.parseInt(args[4]) : 1 << 20;
+        long maxQueuedCost = args.length > 5 ? Long.parseLong(args[5]) : 1L << 26;
+        int maxPriority = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+
+        Scanner keyScanner = new Scanner(new File(args[1]));
+        String strKey = keyScanner.nextLine().trim();
+        keyScanner.close();
+
+        Date date = new Date();
+        VersionedIndex index = new VersionedIndex(strKey, 0, 4, false);
+        SequenceIngestor ingestor = new SequenceIngestor(SequenceIngestor.Format.HAPLOTYPE, Runtime.getRuntime().availableProcessors(), 256);
+        int sequenceCount = index.insert(new File(args[0]), ingestor).getSequenceCount();
+        Date date1 = new Date();
+        System.out.println("Sequences indexed: " + sequenceCount + ", tree building and encryption time: " + (date1.getTime() - date.getTime()));
+
+        QueryScheduler scheduler = new QueryScheduler(index, workerCount, maxQueryCost, maxQueuedCost);
+        final QueryServer server = new QueryServer(index, scheduler, maxPriority, port, workerCount, 1024);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.shutdown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        server.start();
+        System.out.println("Listening on port " + server.getPort());
+        server.awaitTermination();
+    }
+}
@@ -0,0 +1,254 @@
+package uk5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Streams the sequences of a genotype file into a generalized suffix tree.
+ *
+ * The file is memory-mapped chunk by chunk and split into rows on a reader thread. Each row is parsed into a
+ * binary SNP string on a pool of workers, and the parsed sequences are handed to the tree in file order, so
+ * parsing overlaps tree construction and the whole file is never held in memory.
+ *
+ * The reader stops when <tt>queueCapacity</tt> rows are waiting to be indexed, which bounds the memory used by
+ * the pipeline whatever the size of the input.
+ *
+ * Two formats are understood:
+ * HAPLOTYPE: one sequence per row, made of '0'/'1' characters; whitespace is ignored. Sequences are numbered by
+ * row, so a blank row uses up an index but adds nothing to the tree, as in the line numbering of the input file.
+ * VCF: header rows ('#') are skipped and every record gives one character to each haplotype of its genotype
+ * columns, '0' for the reference allele (or a missing call) and '1' for any alternate allele. The records are
+ * parsed on the workers as they stream in, but a haplotype is only complete at the end of the input, so the
+ * haplotypes are collected in memory and added to the tree afterwards, numbered in column order.
+ */
+public class SequenceIngestor {
+
+    public enum Format { HAPLOTYPE, VCF }
+
+    /**
+     * The size of the file regions that are mapped in memory at once
+     */
+    private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+    /**
+     * The first genotype column of a VCF record
+     */
+    private static final int VCF_FIRST_SAMPLE = 9;
+    /**
+     * Marks the end of the input in the queue of parsed rows
+     */
+    private static final Future<String> END_OF_INPUT = new FutureTask<String>(new Callable<String>() {
+        @Override
+        public String call() {
+            return null;
+        }
+    });
+
+    private final Format format;
+    private final int workers;
+    private final int queueCapacity;
+
+    /**
+     * @param format the format of the files to read
+     * @param workers the number of threads parsing rows
+     * @param queueCapacity the max number of rows read ahead of the tree construction
+     */
+    public SequenceIngestor(Format format, int workers, int queueCapacity) {
+        if (workers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("workers and queueCapacity must be positive. Got " + workers + ", " + queueCapacity);
+        }
+        this.format = format;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Adds all the sequences of the given file to the tree, numbering them from <tt>firstIndex</tt> onwards.
+     *
+     * @param file the file to read
+     * @param tree the tree the sequences are added to
+     * @param firstIndex the index of the first sequence
+     * @return the number of indexes used, that is the number of rows for HAPLOTYPE and of haplotypes for VCF
+     */
+    public int ingest(final File file, SubstringMaxSearch tree, int firstIndex) throws IOException, InterruptedException {
+        final ExecutorService parsers = Executors.newFixedThreadPool(workers);
+        final BlockingQueue<Future<String>> parsed = new ArrayBlockingQueue<>(queueCapacity);
+        final Throwable[] readError = new Throwable[1];
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readRows(file, parsers, parsed);
+                } catch (InterruptedException e) {
+                    // the consumer gave up, keep the flag so that the end of the input is not waited for
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    readError[0] = e;
+                } finally {
+                    try {
+                        parsed.put(END_OF_INPUT);
+                    } catch (InterruptedException e) {
+                        // the consumer gave up, nobody is waiting for the end of the input
+                    }
+                }
+            }
+        }, "sequence-reader");
+        reader.start();
+
+        int count = 0;
+        List<StringBuilder> haplotypes = new ArrayList<>();
+        try {
+            for (Future<String> row = parsed.take(); row != END_OF_INPUT; row = parsed.take()) {
+                String seq;
+                try {
+                    seq = row.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Cannot parse row " + (count + 1) + " of " + file, e.getCause());
+                }
+                if (format == Format.VCF) {
+                    addVcfRecord(seq, haplotypes, count + 1, file);
+                } else if (!seq.isEmpty()) {
+                    tree.put(seq, firstIndex + count);
+                    tree.sufPosUpdate(seq, firstIndex + count);
+                }
+                count++;
+            }
+        } finally {
+            reader.interrupt();
+            reader.join();
+            parsers.shutdownNow();
+        }
+        if (readError[0] != null) {
+            throw readFailure(readError[0], file);
+        }
+
+        if (format == Format.VCF) {
+            for (int i = 0; i < haplotypes.size(); i++) {
+                String seq = haplotypes.get(i).toString();
+                haplotypes.set(i, null);
+                tree.put(seq, firstIndex + i);
+                tree.sufPosUpdate(seq, firstIndex + i);
+            }
+            count = haplotypes.size();
+        }
+        return count;
+    }
+
+    /**
+     * Appends the alleles of a parsed VCF record to the haplotypes, one allele each.
+     */
+    private static void addVcfRecord(String alleles, List<StringBuilder> haplotypes, int record, File file) throws IOException {
+        if (haplotypes.isEmpty()) {
+            for (int i = 0; i < alleles.length(); i++) {
+                haplotypes.add(new StringBuilder());
+            }
+        } else if (alleles.length() != haplotypes.size()) {
+            throw new IOException("Record " + record + " of " + file + " has " + alleles.length() + " alleles, expected " + haplotypes.size());
+        }
+        for (int i = 0; i < alleles.length(); i++) {
+            haplotypes.get(i).append(alleles.charAt(i));
+        }
+    }
+
+    /**
+     * Returns the failure of the reader thread as thrown by ingest.
+     */
+    private static IOException readFailure(Throwable failure, File file) {
+        if (failure instanceof IOException) {
+            return (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return new IOException("Cannot read " + file, failure);
+    }
+
+    /**
+     * Splits the mapped file into rows and submits them to the parsers, in file order.
+     */
+    private void readRows(File file, ExecutorService parsers, BlockingQueue<Future<String>> parsed) throws IOException, InterruptedException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            StringBuilder line = new StringBuilder();
+            for (long position = 0; position < size; position += CHUNK_SIZE) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+                while (chunk.hasRemaining()) {
+                    char ch = (char) (chunk.get() & 0xff);
+                    if (ch == '\n') {
+                        submitRow(line.toString(), parsers, parsed);
+                        line.setLength(0);
+                    } else if (ch != '\r') {
+                        line.append(ch);
+                    }
+                }
+            }
+            if (line.length() > 0) {
+                submitRow(line.toString(), parsers, parsed);
+            }
+        }
+    }
+
+    private void submitRow(final String row, ExecutorService parsers, BlockingQueue<Future<String>> parsed) throws InterruptedException {
+        if (format == Format.VCF && (row.trim().isEmpty() || row.startsWith("#"))) {
+            return;
+        } else if (row.trim().isEmpty()) {
+            // a blank row keeps its index, so that sequences stay numbered by row
+            FutureTask<String> blank = new FutureTask<>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return "";
+                }
+            });
+            blank.run();
+            parsed.put(blank);
+            return;
+        }
+        parsed.put(parsers.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return format == Format.VCF ? parseVcfRecord(row) : parseHaplotype(row);
+            }
+        }));
+    }
+
+    /**
+     * Returns the haplotype row without any whitespace.
+     */
+    static String parseHaplotype(String row) {
+        StringBuilder seq = new StringBuilder(row.length());
+        for (int i = 0; i < row.length(); i++) {
+            char ch = row.charAt(i);
+            if (!Character.isWhitespace(ch)) {
+                seq.append(ch);
+            }
+        }
+        return seq.toString();
+    }
+
+    /**
+     * Returns the alleles of the genotype columns of a VCF record as a binary string, one character per haplotype.
+     */
+    static String parseVcfRecord(String row) {
+        String[] columns = row.split("\t");
+        if (columns.length <= VCF_FIRST_SAMPLE) {
+            throw new IllegalArgumentException("VCF record without genotype columns: " + row);
+        }
+        StringBuilder seq = new StringBuilder(2 * (columns.length - VCF_FIRST_SAMPLE));
+        for (int i = VCF_FIRST_SAMPLE; i < columns.length; i++) {
+            String sample = columns[i];
+            int end = sample.indexOf(':');
+            String genotype = end < 0 ? sample : sample.substring(0, end);
+            for (String allele : genotype.split("[|/]")) {
+                seq.append(allele.equals("0") || allele.equals(".") ? '0' : '1');
+            }
+        }
+        return seq.toString();
+    }
+}
@@ -53,6 +53,10 @@ public class SubstringMaxSearch {
      * The index of the last item that was added to the GST
      */
     private int last = 0;
+    /**
+     * The max length of the paths of the tree, 0 if every suffix is indexed to its full length
+     */
+    private final int maxDepth;
     /**
      * The root of the suffix tree
      */
@@ -61,6 +65,58 @@ public class SubstringMaxSearch {
      * The last leaf that was added during the update operation
      */
     private Node activeLeaf = root;
+    /**
+     * The key the tree was encrypted with while an encrypted append is running, null otherwise
+     */
+    private String appendKey = null;
+    /**
+     * The edges decrypted, created or split by the running encrypted append
+     */
+    private final Set<Edge> touchedEdges = Collections.newSetFromMap(new IdentityHashMap<Edge, Boolean>());
+    /**
+     * The string being added by put, null otherwise
+     */
+    private String seq = null;
+    /**
+     * The active point of the construction: the node and the range [activeStart, activeEnd) of seq
+     * that must be appended to the path of the node
+     */
+    private Node activeNode = root;
+    private int activeStart = 0;
+    private int activeEnd = 0;
+    /**
+     * The reference pair computed by the last canonize call
+     */
+    private Node refNode = root;
+    private int refStart = 0;
+    /**
+     * The node computed by the last testAndSplit call
+     */
+    private Node splitNode = root;
+
+    /**
+     * Builds a tree that indexes every suffix to its full length.
+     */
+    public SubstringMaxSearch() {
+        this(0);
+    }
+
+    /**
+     * Builds a depth-bounded tree, where every path is cut at <tt>maxDepth</tt> characters.
+     *
+     * Each suffix is indexed by its first <tt>maxDepth</tt> characters only, and its position is kept by the node
+     * where that prefix ends. The tree has at most as many nodes as the full suffix tree of the same sequences,
+     * and no label is longer than <tt>maxDepth</tt>, so the encryption key only needs to be <tt>maxDepth</tt> bits
+     * long. Searches for words up to <tt>maxDepth</tt> characters return the same results as on a full tree.
+     *
+     * @param maxDepth the max length of the words that will be searched, 0 for a full suffix tree
+     */
+    public SubstringMaxSearch(int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("The max depth must not be negative. Got " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+    }
 
     /**
      * Searches for the given word within the GST.
@@ -107,11 +163,23 @@ public class SubstringMaxSearch {
 
     public ArrayList<String> encryptedSearch(String word, String position, String key) throws IllegalAccessException, ClassNotFoundException, InstantiationException {
         ArrayList<String> suffPosition =new ArrayList<>();
+        encryptedSearch(word, position, key, suffPosition);
+        return suffPosition;
+    }
+
+    /**
+     * Runs the set-maximal search of the given word, adds the seq;matchCount results to <tt>suffPosition</tt>
+     * and returns the length of the match. The length is returned even when no sequence has a suffix at
+     * the given position, so that the matches of several trees can be compared.
+     */
+    public int encryptedSearch(String word, String position, String key, List<String> suffPosition) throws IllegalAccessException, ClassNotFoundException, InstantiationException {
+        checkDepth(word);
         Pair<Node, Integer> matchedNode = encryptedSearchNode(word, key);
+        if(matchedNode == null){return 0;}
         Node tmpNode = matchedNode.getFirst();
         int matchCount = matchedNode.getSecond();
 //        position = Integer.toBinaryString(Integer.parseInt(position));
-        if(tmpNode == null){return suffPosition;}
+        if(tmpNode == null){return 0;}
         if (tmpNode.getSuffPosition().size() > 0){
             for (String s: tmpNode.getSuffPosition()){
                 String encryptedSeqNum = s.split(":")[0].split(";")[0];
@@ -142,18 +210,16 @@ public class SubstringMaxSearch {
             }
         }
         if(tmpNode.getEdges().size() > 0){
-            getSuffPositions(tmpNode,position,key,matchCount);
-        }
-        for (int i = 0; i < suffPos.size(); i++) {
-            suffPosition.add(suffPos.get(i));
+            getSuffPositions(tmpNode,position,key,matchCount,suffPosition);
         }
-        suffPos.clear();
-        return suffPosition;
+        return matchCount;
     }
 
-    ArrayList<String> suffPos =new ArrayList<>();
-
-    public void getSuffPositions(Node tmpNode, String position, String key, int matchCount) throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+    /**
+     * Adds to <tt>suffPos</tt> the sequences of the subtree of <tt>tmpNode</tt> having a suffix at the given position.
+     * The results are collected in the caller's list so that concurrent searches do not share any state.
+     */
+    public void getSuffPositions(Node tmpNode, String position, String key, int matchCount, List<String> suffPos) throws InstantiationException, IllegalAccessException, ClassNotFoundException {
         //going to check children up to leaf node recursively
         Map<Character, Edge> edges = tmpNode.getEdges();
         int numberOfChild = edges.size();
@@ -189,7 +255,7 @@ public class SubstringMaxSearch {
                     }
                 }
             }
-            getSuffPositions(dest, position, key,matchCount);
+            getSuffPositions(dest, position, key,matchCount,suffPos);
             if (i==numberOfChild-1){return;}
         }
     }
@@ -197,7 +263,8 @@ public class SubstringMaxSearch {
     public void sufPosUpdate(String s, Integer seqNum){
         String suf = "";
         for (int i = s.length(); i > 0 ; --i) {
-            suf = s.substring(i-1);
+            // on a depth-bounded tree the suffix is only indexed up to the cut
+            suf = maxDepth > 0 ? s.substring(i-1, Math.min(s.length(), i-1+maxDepth)) : s.substring(i-1);
             Node srchNode = searchNode(suf);
             String suffPos = Integer.toString(seqNum)+";"+ Integer.toString(i);
 //            int seqLength = Integer.toString(seqNum).length();
@@ -210,6 +277,27 @@ public class SubstringMaxSearch {
         return search(word, -1);
     }
 
+    /**
+     * Searches for the given word within a tree that has been encrypted with <tt>key</tt>.
+     * Only the labels on the path of the word are decrypted, and the tree is left unchanged.
+     *
+     * This is a trusted-server mode: the labels are decrypted in plain text by the caller holding the key,
+     * without garbled circuits, so it gives neither data nor query privacy. Use encryptedSearch when the
+     * tree is hosted by an untrusted party.
+     *
+     * @param word the key to search for
+     * @param key the key the tree was encrypted with
+     * @return the collection of indexes associated with the input <tt>word</tt>
+     */
+    public Collection<Integer> decryptedSearch(String word, String key) {
+        checkDepth(word);
+        Node tmpNode = searchNode(word, key);
+        if (tmpNode == null) {
+            return Collections.<Integer>emptyList();
+        }
+        return tmpNode.getData(-1);
+    }
+
     private void encryptTree(Node startNode, SecretKey secKey, IvParameterSpec ivSpec) throws Exception {
         Map<Character, Edge> edges = startNode.getEdges();
         int numberOfChild = edges.size();
@@ -242,15 +330,7 @@ public class SubstringMaxSearch {
         int numberOfChild = edges.size();
         for (int i = 0; i < numberOfChild; i++) {
             Edge edge = (Edge) edges.values().toArray()[i];
-            String modifiedKey = key.substring(0,edge.getDest().getDataLength());
-            boolean[] keyBoolean = Utils.fromStringOriginal(modifiedKey);
-            boolean[] labelBool = Utils.fromStringOriginal(edge.getLabel());
-            boolean[]  encryptedSeq = new boolean[keyBoolean.length];
-            String encryptedVal = "";
-            for (int j = 0; j < keyBoolean.length; j++){
-                encryptedSeq[j] = keyBoolean[j]^labelBool[j%labelBool.length];//IV introduce
-                encryptedVal +=encryptedSeq[j]?"1":"0";
-            }
+            String encryptedVal = xorLabel(edge.getLabel(), key, edge.getDest().getDataLength());
 //            String label = edge.getLabel();
 //            StringBuilder encryptedSeq = new StringBuilder();
 //            for(int j = 0; j < modifiedKey.length(); j++)
@@ -293,9 +373,9 @@ public class SubstringMaxSearch {
 //                }
 //            }
 
-            if (dest.getEdges().size() == 0) {
-                return;
-            }else{encryptTree_(dest, key);}
+            if (dest.getEdges().size() > 0) {
+                encryptTree_(dest, key);
+            }
 //            if (i==numberOfChild-1){return;}
         }
     }
@@ -308,6 +388,7 @@ public class SubstringMaxSearch {
      * @return at most <tt>results</tt> values for the given word
      */
     public Collection<Integer> search(String word, int results) {
+        checkDepth(word);
         Node tmpNode = searchNode(word);
         if (tmpNode == null) {
             return Collections.EMPTY_LIST;
@@ -323,6 +404,7 @@ public class SubstringMaxSearch {
      * @return at most <tt>results</tt> values for the given word
      */
     public ResultInfo searchWithCount(String word, int to) {
+        checkDepth(word);
         Node tmpNode = searchNode(word);
         if (tmpNode == null) {
             return new ResultInfo(Collections.EMPTY_LIST, 0);
@@ -331,10 +413,27 @@ public class SubstringMaxSearch {
         return new ResultInfo(tmpNode.getData(to), tmpNode.getResultCount());
     }
 
+    /**
+     * Rejects the words that are longer than the paths of a depth-bounded tree, since they were not indexed.
+     */
+    private void checkDepth(String word) {
+        if (maxDepth > 0 && word.length() > maxDepth) {
+            throw new IllegalArgumentException("The tree is bounded to words of " + maxDepth + " characters. Got " + word.length());
+        }
+    }
+
     /**
      * Returns the tree node (if present) that corresponds to the given string.
      */
     private Node searchNode(String word) {
+        return searchNode(word, null);
+    }
+
+    /**
+     * Returns the tree node (if present) that corresponds to the given string,
+     * decrypting the labels with <tt>key</tt> unless it is null.
+     */
+    private Node searchNode(String word, String key) {
         /*
          * Verifies if exists a path from the root to a node such that the concatenation
          * of all the labels on the path is a superstring of the given word.
@@ -351,7 +450,7 @@ public class SubstringMaxSearch {
                 // there is no edge starting with this char
                 return null;
             } else {
-                String label = currentEdge.getLabel();
+                String label = key == null ? labelOf(currentEdge) : xorLabel(currentEdge.getLabel(), key, currentEdge.getLabel().length());
                 int lenToMatch = Math.min(word.length() - i, label.length());
                 if (!word.regionMatches(i, label, 0, lenToMatch)) {
                     // the label on the edge does not correspond to the one in the string to search
@@ -435,6 +534,163 @@ public class SubstringMaxSearch {
         return null;
     }
 
+    /**
+     * Estimates the cost of encryptedSearch for the given query without running any circuit.
+     *
+     * The path of the query is followed by the first char of the edges and their data lengths, as if every
+     * label matched, so the estimate is an upper bound: a real search stops at the first mismatch.
+     * encryptedSearch runs one circuit per edge of the path, so each edge costs one unit on top of the
+     * label characters it compares.
+     *
+     * @param query the query to estimate
+     * @return the number of label characters that would be compared in circuits plus the number of circuits
+     * @throws IllegalArgumentException if the query is longer than the paths of a depth-bounded tree
+     */
+    public int estimateSearchCost(String query) {
+        checkDepth(query);
+        Node currentNode = root;
+        int cost = 0;
+        for (int i = 0; i < query.length(); ) {
+            Edge currentEdge = currentNode.getEdge(query.charAt(i));
+            if (null == currentEdge) {
+                break;
+            }
+            int labelLength = currentEdge.getDest().getDataLength();
+            cost += Math.min(labelLength, query.length() - i) + 1;
+            i += labelLength;
+            currentNode = currentEdge.getDest();
+        }
+        return cost;
+    }
+
+    /**
+     * Runs the set-maximal search of every suffix of the query in a single left to right scan.
+     *
+     * For each offset j the longest prefix of query[j..] found in the tree is matched, and the sequences having
+     * a suffix at <tt>position + j</tt> under the matched node are reported, as encryptedSearch would for
+     * query[j..]. After a mismatch the scan follows the suffix link of the last node it reached instead of
+     * restarting from the root. The characters already matched are then walked down by edge length only,
+     * so every query character is compared in a circuit at most once per mismatch, instead of once per offset.
+     *
+     * @param query the query to search for
+     * @param position the position of the first character of the query
+     * @param key the key the tree was encrypted with
+     * @return for every offset of the query, the seq;matchCount results of the suffix starting there
+     */
+    public List<ArrayList<String>> encryptedSearchAllOffsets(String query, int position, String key) throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+        checkDepth(query);
+        List<ArrayList<String>> results = new ArrayList<>(query.length());
+        CheckEquality eq = new CheckEquality();
+        int m = query.length();
+
+        // the match of the current offset j is query[j, j + matchCount): the path of node (depth chars)
+        // followed by onEdge chars of edge
+        Node node = root;
+        int depth = 0;
+        Edge edge = null;
+        int onEdge = 0;
+        int matchCount = 0;
+
+        for (int j = 0; j < m; j++) {
+            // extend the match as far as the tree allows
+            while (j + matchCount < m) {
+                if (onEdge == 0) {
+                    edge = node.getEdge(query.charAt(j + matchCount));
+                    if (null == edge) {
+                        // there is no edge starting with this char
+                        break;
+                    }
+                }
+                int labelLength = edge.getDest().getDataLength();
+                int lenToMatch = Math.min(labelLength - onEdge, m - j - matchCount);
+                String encryptedLabel = edge.getLabel().substring(onEdge, onEdge + lenToMatch);
+                String decryptionKey = key.substring(onEdge, onEdge + lenToMatch);
+                eq.create_socket();
+                int match = eq.encryptLabelMatches(query.substring(j + matchCount, j + matchCount + lenToMatch), encryptedLabel, decryptionKey, j + matchCount + lenToMatch == m);
+                eq.close_socket();
+                matchCount += match;
+                onEdge += match;
+                if (onEdge == labelLength) {
+                    // advance to next node
+                    node = edge.getDest();
+                    depth += labelLength;
+                    edge = null;
+                    onEdge = 0;
+                } else if (match < lenToMatch) {
+                    // the label on the edge does not correspond to the rest of the query
+                    break;
+                }
+            }
+
+            ArrayList<String> suffPosition = new ArrayList<>();
+            if (matchCount > 0) {
+                collectSuffPositions(onEdge > 0 ? edge.getDest() : node, String.valueOf(position + j), key, matchCount, suffPosition);
+            }
+            results.add(suffPosition);
+
+            if (matchCount == 0) {
+                continue;
+            }
+            // drop the first char: query[j + 1, j + matchCount) is in the tree, find where it ends
+            matchCount--;
+            Node start = root;
+            int startDepth = 0;
+            if (node != root && node.getSuffix() != null) {
+                start = node.getSuffix();
+                startDepth = depth - 1;
+            }
+            while (true) {
+                // walk the known chars down, choosing the edges by their first char and skipping them
+                // by their data length, so that no label has to be compared
+                node = start;
+                depth = startDepth;
+                edge = null;
+                onEdge = 0;
+                int i = j + 1 + depth;
+                while (i < j + 1 + matchCount) {
+                    edge = node.getEdge(query.charAt(i));
+                    if (null == edge) {
+                        break;
+                    }
+                    int labelLength = edge.getDest().getDataLength();
+                    if (labelLength <= j + 1 + matchCount - i) {
+                        node = edge.getDest();
+                        depth += labelLength;
+                        edge = null;
+                        i += labelLength;
+                    } else {
+                        onEdge = j + 1 + matchCount - i;
+                        i += onEdge;
+                    }
+                }
+                if (i == j + 1 + matchCount) {
+                    break;
+                } else if (start == root) {
+                    throw new IllegalStateException("The tree has no path for a substring of a matched query");
+                }
+                // a suffix link that does not lead to the expected path, walk the known chars from the root
+                start = root;
+                startDepth = 0;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Adds to <tt>suffPos</tt> the sequences having a suffix at the given position in tmpNode or in its subtree.
+     */
+    private void collectSuffPositions(Node tmpNode, String position, String key, int matchCount, List<String> suffPos) throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+        for (String s: tmpNode.getSuffPosition()){
+            String[] seqAndPosition = s.split(":")[0].split(";");
+            if (position.equals(seqAndPosition[1])) {
+                suffPos.add(seqAndPosition[0]+";"+matchCount);
+            }
+        }
+        if (tmpNode.getEdges().size() > 0) {
+            getSuffPositions(tmpNode, position, key, matchCount, suffPos);
+        }
+    }
+
     private void datalengthUpdate(Node startNode) {
         Map<Character, Edge> edges = startNode.getEdges();
         int numberOfChild = edges.size();
@@ -443,9 +699,85 @@ public class SubstringMaxSearch {
             int dataLen = edge.getLabel().length();
             Node dest = edge.getDest();
             dest.setDataLength(dataLen);
-            if (dest.getEdges().size() == 0) {
-                return;
-            }else{datalengthUpdate(dest);}
+            if (dest.getEdges().size() > 0) {
+                datalengthUpdate(dest);
+            }
+        }
+    }
+
+    /**
+     * Sets the data length of every node and encrypts all the edge labels of the tree with the given key.
+     */
+    public void encrypt(String key) {
+        datalengthUpdate(root);
+        encryptTree_(root, key);
+    }
+
+    /**
+     * XORs the first <tt>length</tt> bits of the key with the label. The operation is its own inverse,
+     * so the same call encrypts a plain label and decrypts an encrypted one.
+     */
+    private String xorLabel(String label, String key, int length) {
+        boolean[] keyBoolean = Utils.fromStringOriginal(key.substring(0, length));
+        boolean[] labelBool = Utils.fromStringOriginal(label);
+        StringBuilder encryptedVal = new StringBuilder(length);
+        for (int j = 0; j < keyBoolean.length; j++){
+            encryptedVal.append(keyBoolean[j]^labelBool[j%labelBool.length] ? '1' : '0');//IV introduce
+        }
+        return encryptedVal.toString();
+    }
+
+    /**
+     * Returns the plain label of the given edge.
+     *
+     * While an encrypted append is running, an edge that is still encrypted is decrypted in place the first
+     * time it is read, and remembered so that it is encrypted again once the append is over.
+     */
+    private String labelOf(Edge edge) {
+        if (appendKey != null && touchedEdges.add(edge)) {
+            edge.setLabel(xorLabel(edge.getLabel(), appendKey, edge.getLabel().length()));
+        }
+        return edge.getLabel();
+    }
+
+    /**
+     * Builds a new edge, remembering it as plain text if an encrypted append is running.
+     */
+    private Edge newEdge(String label, Node dest) {
+        Edge edge = new Edge(label, dest);
+        if (appendKey != null) {
+            touchedEdges.add(edge);
+        }
+        return edge;
+    }
+
+    /**
+     * Adds the given sequences to a tree that has already been encrypted with <tt>key</tt>.
+     *
+     * Only the edges visited, created or split while inserting the new sequences are decrypted, and only those
+     * edges get their data length updated and are encrypted again. The rest of the tree is left untouched,
+     * so the cost depends on the new sequences instead of the size of the index.
+     *
+     * @param sequences the sequences to add, numbered from <tt>firstIndex</tt> onwards
+     * @param firstIndex the index of the first sequence
+     * @param key the key used by the last encryption of the tree
+     * @throws IllegalStateException if an invalid index is passed as input
+     */
+    public void encryptedAppend(List<String> sequences, int firstIndex, String key) throws IllegalStateException {
+        appendKey = key;
+        try {
+            for (int i = 0; i < sequences.size(); i++) {
+                put(sequences.get(i), firstIndex + i);
+                sufPosUpdate(sequences.get(i), firstIndex + i);
+            }
+        } finally {
+            appendKey = null;
+            for (Edge edge : touchedEdges) {
+                int dataLen = edge.getLabel().length();
+                edge.getDest().setDataLength(dataLen);
+                edge.setLabel(xorLabel(edge.getLabel(), key, dataLen));
+            }
+            touchedEdges.clear();
         }
     }
 
@@ -456,6 +788,12 @@ public class SubstringMaxSearch {
      * Entries must be inserted so that their indexes are in non-decreasing order,
      * otherwise an IllegalStateException will be raised.
      *
+     * Construction works on index ranges of <tt>key</tt> held in the active point fields, so the only objects
+     * allocated are the nodes and edges (with their labels) that are added to the tree.
+     *
+     * On a depth-bounded tree the suffix tree of the key alone is built first, in a single pass, and its paths
+     * are then added to this tree cut at <tt>maxDepth</tt>.
+     *
      * @param key the string key that will be added to the index
      * @param index the value that will be added to the index
      * @throws IllegalStateException if an invalid index is passed as input
@@ -467,119 +805,200 @@ public class SubstringMaxSearch {
             last = index;
         }
 
+        if (maxDepth > 0) {
+            SubstringMaxSearch keyTree = new SubstringMaxSearch();
+            keyTree.put(key, index);
+            Map<Node, Node> grafted = new IdentityHashMap<>();
+            grafted.put(keyTree.root, root);
+            graft(root, keyTree.root, 0, index, grafted);
+            // the suffix links of the key tree hold for the nodes it shares with this tree
+            for (Map.Entry<Node, Node> entry : grafted.entrySet()) {
+                Node suffix = grafted.get(entry.getKey().getSuffix());
+                if (suffix != null && entry.getValue().getSuffix() == null && entry.getValue() != root) {
+                    entry.getValue().setSuffix(suffix);
+                }
+            }
+            return;
+        }
+
         // reset activeLeaf
         activeLeaf = root;
 
-        String remainder = key;
-        Node s = root;
+        seq = key;
+        activeNode = root;
+        activeStart = 0;
 
         // proceed with tree construction (closely related to procedure in
         // Ukkonen's paper)
-        String text = "";
-        // iterate over the string, one char at a time
-        for (int i = 0; i < remainder.length(); i++) {
-            // line 6
-            text += remainder.charAt(i);
-            // use intern to make sure the resulting string is in the pool.
-            text = text.intern();
-
-            // line 7: update the tree with the new transitions due to this new char
-            Pair<Node, String> active = update(s, text, remainder.substring(i), index);
-            // line 8: make sure the active pair is canonical
-            active = canonize(active.getFirst(), active.getSecond());
-
-            s = active.getFirst();
-            text = active.getSecond();
+        try {
+            // iterate over the string, one char at a time
+            for (int i = 0; i < key.length(); i++) {
+                // line 6
+                activeEnd = i + 1;
+
+                // line 7: update the tree with the new transitions due to this new char
+                update(i, index);
+                // line 8: make sure the active point is canonical
+                canonize(activeNode, activeStart, activeEnd);
+
+                activeNode = refNode;
+                activeStart = refStart;
+            }
+        } finally {
+            seq = null;
         }
 
         // add leaf suffix link, is necessary
-        if (null == activeLeaf.getSuffix() && activeLeaf != root && activeLeaf != s) {
-            activeLeaf.setSuffix(s);
+        if (null == activeLeaf.getSuffix() && activeLeaf != root && activeLeaf != activeNode) {
+            activeLeaf.setSuffix(activeNode);
+        }
+
+    }
+
+    /**
+     * Adds the paths below <tt>src</tt>, a node of the suffix tree of a single key, below <tt>dst</tt>, the node of
+     * this tree at the end of the same path of <tt>depth</tt> characters. Paths are cut at <tt>maxDepth</tt>, and
+     * the node where a path ends gets the index of the key. The key tree nodes above the cut are mapped to the
+     * nodes of this tree in <tt>grafted</tt>.
+     */
+    private void graft(Node dst, Node src, int depth, int index, Map<Node, Node> grafted) {
+        for (Edge edge : src.getEdges().values()) {
+            String label = edge.getLabel();
+            Node keyNode = edge.getDest();
+            if (depth + label.length() >= maxDepth) {
+                addPath(dst, label.substring(0, maxDepth - depth)).addRef(index);
+            } else if (keyNode.getEdges().isEmpty()) {
+                addPath(dst, label).addRef(index);
+            } else {
+                Node node = addPath(dst, label);
+                grafted.put(keyNode, node);
+                graft(node, keyNode, depth + label.length(), index, grafted);
+            }
         }
+    }
 
+    /**
+     * Returns the node at the end of the given label below <tt>node</tt>, splitting an edge or adding a leaf
+     * when the path is not in the tree yet.
+     */
+    private Node addPath(Node node, String label) {
+        int i = 0;
+        while (i < label.length()) {
+            Edge g = node.getEdge(label.charAt(i));
+            if (null == g) {
+                Node leaf = new Node();
+                node.addEdge(label.charAt(i), newEdge(label.substring(i), leaf));
+                return leaf;
+            }
+            String glabel = labelOf(g);
+            int common = 1;
+            while (common < glabel.length() && i + common < label.length() && glabel.charAt(common) == label.charAt(i + common)) {
+                common++;
+            }
+            if (common < glabel.length()) {
+                // split the edge where the label leaves it
+                Node r = new Node();
+                Edge newedge = newEdge(glabel.substring(0, common), r);
+                g.setLabel(glabel.substring(common));
+                r.addEdge(g.getLabel().charAt(0), g);
+                node.addEdge(glabel.charAt(0), newedge);
+                node = r;
+            } else {
+                node = g.getDest();
+            }
+            i += common;
+        }
+        return node;
     }
 
     /**
-     * Tests whether the string stringPart + t is contained in the subtree that has inputs as root.
+     * Tests whether the string seq[start, end) + t is contained in the subtree that has inputs as root.
      * If that's not the case, and there exists a path of edges e1, e2, ... such that
-     *     e1.label + e2.label + ... + $end = stringPart
+     *     e1.label + e2.label + ... + $end = seq[start, end)
      * and there is an edge g such that
-     *     g.label = stringPart + rest
+     *     g.label = seq[start, end) + rest
      *
      * Then g will be split in two different edges, one having $end as label, and the other one
      * having rest as label.
      *
+     * The last node that can be reached by following the path denoted by seq[start, end) starting from inputs
+     * is left in <tt>splitNode</tt>.
+     *
      * @param inputs the starting node
-     * @param stringPart the string to search
+     * @param start the start of the string to search in seq
+     * @param end the end (exclusive) of the string to search in seq
      * @param t the following character
-     * @param remainder the remainder of the string to add to the index
+     * @param rest the start of the remainder of the string to add to the index, the position of t in seq
      * @param value the value to add to the index
-     * @return a pair containing
-     *                  true/false depending on whether (stringPart + t) is contained in the subtree starting in inputs
-     *                  the last node that can be reached by following the path denoted by stringPart starting from inputs
-     *
+     * @return true/false depending on whether (seq[start, end) + t) is contained in the subtree starting in inputs
      */
-    private Pair<Boolean, Node> testAndSplit(final Node inputs, final String stringPart, final char t, final String remainder, final int value) {
+    private boolean testAndSplit(final Node inputs, final int start, final int end, final char t, final int rest, final int value) {
         // descend the tree as far as possible
-        Pair<Node, String> ret = canonize(inputs, stringPart);
-        Node s = ret.getFirst();
-        String str = ret.getSecond();
+        canonize(inputs, start, end);
+        Node s = refNode;
+        int str = refStart;
+        int strLen = end - str;
 
-        if (!"".equals(str)) {
-            Edge g = s.getEdge(str.charAt(0));
+        if (strLen > 0) {
+            Edge g = s.getEdge(seq.charAt(str));
 
-            String label = g.getLabel();
+            String label = labelOf(g);
             // must see whether "str" is substring of the label of an edge
-            if (label.length() > str.length() && label.charAt(str.length()) == t) {
-                return new Pair<Boolean, Node>(true, s);
+            if (label.length() > strLen && label.charAt(strLen) == t) {
+                splitNode = s;
+                return true;
             } else {
                 // need to split the edge
-                String newlabel = label.substring(str.length());
-                assert (label.startsWith(str));
+                String newlabel = label.substring(strLen);
+                assert (seq.regionMatches(str, label, 0, strLen));
 
                 // build a new node
                 Node r = new Node();
                 // build a new edge
-                Edge newedge = new Edge(str, r);
+                Edge newedge = newEdge(seq.substring(str, end), r);
 
                 g.setLabel(newlabel);
 
                 // link s -> r
                 r.addEdge(newlabel.charAt(0), g);
-                s.addEdge(str.charAt(0), newedge);
+                s.addEdge(seq.charAt(str), newedge);
 
-                return new Pair<Boolean, Node>(false, r);
+                splitNode = r;
+                return false;
             }
 
         } else {
             Edge e = s.getEdge(t);
+            splitNode = s;
             if (null == e) {
                 // if there is no t-transtion from s
-                return new Pair<Boolean, Node>(false, s);
+                return false;
             } else {
-                if (remainder.equals(e.getLabel())) {
+                String elabel = labelOf(e);
+                int restLen = seq.length() - rest;
+                if (elabel.length() == restLen && seq.regionMatches(rest, elabel, 0, restLen)) {
                     // update payload of destination node
                     e.getDest().addRef(value);
-                    return new Pair<Boolean, Node>(true, s);
-                } else if (remainder.startsWith(e.getLabel())) {
-                    return new Pair<Boolean, Node>(true, s);
-                } else if (e.getLabel().startsWith(remainder)) {
+                    return true;
+                } else if (elabel.length() < restLen && seq.regionMatches(rest, elabel, 0, elabel.length())) {
+                    return true;
+                } else if (elabel.length() > restLen && seq.regionMatches(rest, elabel, 0, restLen)) {
                     // need to split as above
                     Node newNode = new Node();
                     newNode.addRef(value);
 
-                    Edge newEdge = new Edge(remainder, newNode);
+                    Edge newEdge = newEdge(seq.substring(rest), newNode);
 
-                    e.setLabel(e.getLabel().substring(remainder.length()));
+                    e.setLabel(elabel.substring(restLen));
 
                     newNode.addEdge(e.getLabel().charAt(0), e);
 
                     s.addEdge(t, newEdge);
 
-                    return new Pair<Boolean, Node>(false, s);
+                    return false;
                 } else {
                     // they are different words. No prefix. but they may still share some common substr
-                    return new Pair<Boolean, Node>(true, s);
+                    return true;
                 }
             }
         }
@@ -587,36 +1006,40 @@ public class SubstringMaxSearch {
     }
 
     /**
-     * Return a (Node, String) (n, remainder) pair such that n is a farthest descendant of
+     * Computes a (Node, int) (n, remainder) pair such that n is a farthest descendant of
      * s (the input node) that can be reached by following a path of edges denoting
-     * a prefix of inputstr and remainder will be string that must be
-     * appended to the concatenation of labels from s to n to get inpustr.
+     * a prefix of seq[start, end) and seq[remainder, end) will be string that must be
+     * appended to the concatenation of labels from s to n to get seq[start, end).
+     *
+     * The pair is left in <tt>refNode</tt> and <tt>refStart</tt>.
      */
-    private Pair<Node, String> canonize(final Node s, final String inputstr) {
-
-        if ("".equals(inputstr)) {
-            return new Pair<Node, String>(s, inputstr);
-        } else {
-            Node currentNode = s;
-            String str = inputstr;
-            Edge g = s.getEdge(str.charAt(0));
+    private void canonize(final Node s, final int start, final int end) {
+        Node currentNode = s;
+        int str = start;
+        if (str < end) {
+            Edge g = s.getEdge(seq.charAt(str));
             // descend the tree as long as a proper label is found
-            while (g != null && str.startsWith(g.getLabel())) {
-                str = str.substring(g.getLabel().length());
+            while (g != null) {
+                String label = labelOf(g);
+                if (label.length() > end - str || !seq.regionMatches(str, label, 0, label.length())) {
+                    break;
+                }
+                str += label.length();
                 currentNode = g.getDest();
-                if (str.length() > 0) {
-                    g = currentNode.getEdge(str.charAt(0));
+                if (str == end) {
+                    break;
                 }
+                g = currentNode.getEdge(seq.charAt(str));
             }
-
-            return new Pair<Node, String>(currentNode, str);
         }
+        refNode = currentNode;
+        refStart = str;
     }
 
     /**
-     * Updates the tree starting from inputNode and by adding stringPart.
+     * Updates the tree starting from the active point by adding seq[i].
      *
-     * Returns a reference (Node, String) pair for the string that has been added so far.
+     * On return the active point is a reference (Node, String) pair for the string that has been added so far.
      * This means:
      * - the Node will be the Node that can be reached by the longest path string (S1)
      *   that can be obtained by concatenating consecutive edges in the tree and
@@ -624,24 +1047,18 @@ public class SubstringMaxSearch {
      * - the String will be the remainder that must be added to S1 to get the string
      *   added so far.
      *
-     * @param inputNode the node to start from
-     * @param stringPart the string to add to the tree
-     * @param rest the rest of the string
+     * @param i the position in seq of the char to add to the tree
      * @param value the value to add to the index
      */
-    private Pair<Node, String> update(final Node inputNode, final String stringPart, final String rest, final int value) {
-        Node s = inputNode;
-        String tempstr = stringPart;
-        char newChar = stringPart.charAt(stringPart.length() - 1);
+    private void update(final int i, final int value) {
+        char newChar = seq.charAt(i);
 
         // line 1
         Node oldroot = root;
 
         // line 1b
-        Pair<Boolean, Node> ret = testAndSplit(s, tempstr.substring(0, tempstr.length() - 1), newChar, rest, value);
-
-        Node r = ret.getSecond();
-        boolean endpoint = ret.getFirst();
+        boolean endpoint = testAndSplit(activeNode, activeStart, Math.max(activeStart, i), newChar, i, value);
+        Node r = splitNode;
 
         Node leaf;
         // line 2
@@ -656,7 +1073,7 @@ public class SubstringMaxSearch {
                 // must build a new leaf
                 leaf = new Node();
                 leaf.addRef(value);
-                Edge newedge = new Edge(rest, leaf);
+                Edge newedge = newEdge(seq.substring(i), leaf);
                 r.addEdge(newChar, newedge);
             }
 
@@ -675,21 +1092,19 @@ public class SubstringMaxSearch {
             oldroot = r;
 
             // line 6
-            if (null == s.getSuffix()) { // root node
-                assert (root == s);
+            if (null == activeNode.getSuffix()) { // root node
+                assert (root == activeNode);
                 // this is a special case to handle what is referred to as node _|_ on the paper
-                tempstr = tempstr.substring(1);
+                activeStart++;
             } else {
-                Pair<Node, String> canret = canonize(s.getSuffix(), safeCutLastChar(tempstr));
-                s = canret.getFirst();
-                // use intern to ensure that tempstr is a reference from the string pool
-                tempstr = (canret.getSecond() + tempstr.charAt(tempstr.length() - 1)).intern();
+                canonize(activeNode.getSuffix(), activeStart, i);
+                activeNode = refNode;
+                activeStart = refStart;
             }
 
             // line 7
-            ret = testAndSplit(s, safeCutLastChar(tempstr), newChar, rest, value);
-            r = ret.getSecond();
-            endpoint = ret.getFirst();
+            endpoint = testAndSplit(activeNode, activeStart, Math.max(activeStart, i), newChar, i, value);
+            r = splitNode;
 
         }
 
@@ -698,21 +1113,12 @@ public class SubstringMaxSearch {
             oldroot.setSuffix(r);
         }
         oldroot = root;
-
-        return new Pair<Node, String>(s, tempstr);
     }
 
     Node getRoot() {
         return root;
     }
 
-    private String safeCutLastChar(String seq) {
-        if (seq.length() == 0) {
-            return "";
-        }
-        return seq.substring(0, seq.length() - 1);
-    }
-
     public int computeCount() {
         return root.computeAndCacheCount();
     }
@@ -763,22 +1169,11 @@ public class SubstringMaxSearch {
         SubstringMaxSearch in = new SubstringMaxSearch();
         //------------------------------------------suffix tree building-------------------------------------------
         Date date = new Date();
-        List<String> treeSeqList = new ArrayList();
-        Scanner fileScanner = new Scanner(new File("shimizu_data_2184.txt"));
-//        Scanner fileScanner = new Scanner(new File("STSeq_row1000_col1000.txt"));
-//        Scanner fileScanner = new Scanner(new File("suffixTreeSeq.txt"));
-        while (fileScanner.hasNextLine()) {
-//            while (fileScanner.hasNextLine() && j <800) {
-            String s = fileScanner.nextLine();
-            treeSeqList.add(s);
-        }
-        fileScanner.close();
-        for (int i = 0; i < treeSeqList.size(); ++i) {//2184
-//        for (int i = 0; i < 150; ++i) {
-            System.out.println("processing... " + (i+1));
-            in.put(treeSeqList.get(i), (i+1));
-            in.sufPosUpdate(treeSeqList.get(i), (i+1));
-        }
+        SequenceIngestor ingestor = new SequenceIngestor(SequenceIngestor.Format.HAPLOTYPE, Runtime.getRuntime().availableProcessors(), 256);
+        int sequenceCount = ingestor.ingest(new File("shimizu_data_2184.txt"), in, 1);
+//        int sequenceCount = ingestor.ingest(new File("STSeq_row1000_col1000.txt"), in, 1);
+//        int sequenceCount = ingestor.ingest(new File("suffixTreeSeq.txt"), in, 1);
+        System.out.println("Sequences indexed: " + sequenceCount);
 //        in.put("0000000000000000000000101000000100000000000010000100001101000100000000000000000000010010101000010000000000100001000000010000000010011000101000000000000000010000000001010000100010000000010000000001000000101000000010100100000000000001000100100001000000000000000000000101000000000000000000001000001000001000000010000000000000000000000001010001000000000000010000000000000001000000001000101000000000000000100010000000000000000000000000000000000110000000000100010000001000000101000100100001101000000001100000001000000010001010000000000000000000000000000000000001000100000001000100001000000011000000000010000000000000010000000010000000000000010000000000000000001000000000010000100011100100000101000000000001100000000010000011000100000010000010001000000000000000000000010000000000000000010000000000110000001000000000000000000000100000000001000100010000010000000000000000010100000000010000000010010010010000000000010000000000010000000010000100000100000000000000000000000000010001010011000000000000000010000010",10000);
 //        in.put("100010",1);
 //        in.sufPosUpdate("0000000000000000000000101000000100000000000010000100001101000100000000000000000000010010101000010000000000100001000000010000000010011000101000000000000000010000000001010000100010000000010000000001000000101000000010100100000000000001000100100001000000000000000000000101000000000000000000001000001000001000000010000000000000000000000001010001000000000000010000000000000001000000001000101000000000000000100010000000000000000000000000000000000110000000000100010000001000000101000100100001101000000001100000001000000010001010000000000000000000000000000000000001000100000001000100001000000011000000000010000000000000010000000010000000000000010000000000000000001000000000010000100011100100000101000000000001100000000010000011000100000010000010001000000000000000000000010000000000000000010000000000110000001000000000000000000000100000000001000100010000010000000000000000010100000000010000000010010010010000000000010000000000010000000010000100000100000000000000000000000000010001010011000000000000000010000010",10000);
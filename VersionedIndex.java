@@ -0,0 +1,356 @@
+package uk5;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An encrypted index that can take new sequences while it is being searched.
+ *
+ * The index is a list of segments, each one an encrypted tree built over a run of consecutive sequences. A tree is
+ * never modified once it is published: inserting a batch builds a new segment aside, then publishes a new
+ * version that shares all the segments of the previous one plus the new segment. Versions are swapped
+ * atomically, so a reader that pinned a version keeps seeing complete trees and is never blocked by a writer.
+ *
+ * Every search visits all the segments of the version and runs its circuits once per segment, so an ESEARCH on
+ * k segments costs up to k times the circuits of a single tree. To bound this, segments are merged in the
+ * background: the merged segment is rebuilt and encrypted from scratch, aside again, and published with the same
+ * swap. Merging is tiered. The newest segments are merged as soon as they hold at least as many sequences as the
+ * segment before them, so segment sizes grow geometrically, there are O(log n) segments for n sequences, and each
+ * sequence is rebuilt O(log n) times. Older segments are merged too while there would still be more than
+ * <tt>maxSegments</tt> of them. Segments inserted while a merge runs are only counted by the next one.
+ *
+ * The index does not keep the plain sequences. A segment ingested from files is rebuilt by reading the files again
+ * with the same ingestor, so they must not change while they are indexed. A segment inserted from a list is only
+ * merged if the index was built with <tt>keepSequences</tt>, otherwise it is never merged and every search
+ * keeps paying for it.
+ */
+public class VersionedIndex {
+
+    private final String key;
+    private final int maxDepth;
+    private final int maxSegments;
+    private final boolean keepSequences;
+    private final AtomicReference<Version> current;
+    /**
+     * Serializes the publication of new versions, readers never take it
+     */
+    private final Object writeLock = new Object();
+    /**
+     * Serializes the merges, so that the segments being merged keep their place in the published versions
+     */
+    private final Object mergeLock = new Object();
+    private final AtomicBoolean mergePending = new AtomicBoolean(false);
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "segment-merger");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param key the key the segments are encrypted with
+     * @param maxDepth the max depth of the segments, 0 for full suffix trees
+     * @param maxSegments the number of segments above which older segments are merged in the background
+     * @param keepSequences whether the sequences inserted from lists are kept, so that their segments can be merged
+     */
+    public VersionedIndex(String key, int maxDepth, int maxSegments, boolean keepSequences) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be positive. Got " + maxSegments);
+        }
+        this.key = key;
+        this.maxDepth = maxDepth;
+        this.maxSegments = maxSegments;
+        this.keepSequences = keepSequences;
+        this.current = new AtomicReference<>(new Version(0, Collections.<Segment>emptyList(), 1, key));
+    }
+
+    /**
+     * Returns the latest published version. The version can be searched for as long as needed,
+     * it does not change when new sequences are inserted or segments are merged.
+     */
+    public Version pin() {
+        return current.get();
+    }
+
+    /**
+     * Builds and encrypts a segment over the given sequences and publishes the version that includes it.
+     * The sequences are numbered after the ones already in the index.
+     *
+     * @param sequences the sequences to add
+     * @return the published version
+     */
+    public Version insert(List<String> sequences) {
+        synchronized (writeLock) {
+            Version base = current.get();
+            SubstringMaxSearch tree = new SubstringMaxSearch(maxDepth);
+            addSequences(tree, sequences, base.nextIndex);
+            tree.encrypt(key);
+            List<Source> sources = null;
+            if (keepSequences) {
+                List<String> kept = Collections.unmodifiableList(new ArrayList<>(sequences));
+                sources = Collections.singletonList(new Source(null, null, kept, kept.size()));
+            }
+            return publish(base, new Segment(tree, base.nextIndex, sequences.size(), sources));
+        }
+    }
+
+    /**
+     * Streams the sequences of the given file into a new segment and publishes the version that includes it.
+     * The sequences are numbered after the ones already in the index. The file is read again when the segment is
+     * merged, so it must not change while it is indexed.
+     *
+     * @param file the file to read
+     * @param ingestor the ingestor reading the file
+     * @return the published version
+     */
+    public Version insert(File file, SequenceIngestor ingestor) throws IOException, InterruptedException {
+        synchronized (writeLock) {
+            Version base = current.get();
+            SubstringMaxSearch tree = new SubstringMaxSearch(maxDepth);
+            int size = ingestor.ingest(file, tree, base.nextIndex);
+            tree.encrypt(key);
+            Source source = new Source(file, ingestor, null, size);
+            return publish(base, new Segment(tree, base.nextIndex, size, Collections.singletonList(source)));
+        }
+    }
+
+    /**
+     * Merges the run of segments chosen by the merge policy into one, then publishes a version where the merged
+     * segment replaces them. Inserts and searches keep running while the merged segment is built.
+     *
+     * @return true if segments were merged, false if the policy found nothing to merge
+     * @throws IOException if an ingested file cannot be read again, or has changed since it was indexed
+     */
+    public boolean merge() throws IOException, InterruptedException {
+        synchronized (mergeLock) {
+            List<Segment> merged = current.get().segments;
+            int from = mergeStart(merged);
+            if (from >= merged.size() - 1) {
+                return false;
+            }
+            List<Source> sources = new ArrayList<>();
+            for (Segment segment : merged.subList(from, merged.size())) {
+                sources.addAll(segment.sources);
+            }
+            Segment combined = buildSegment(sources, merged.get(from).firstIndex);
+
+            synchronized (writeLock) {
+                // only inserts ran since, and they append their segments
+                Version latest = current.get();
+                List<Segment> segments = new ArrayList<>(latest.segments.subList(0, from));
+                segments.add(combined);
+                segments.addAll(latest.segments.subList(merged.size(), latest.segments.size()));
+                current.set(new Version(latest.number + 1, Collections.unmodifiableList(segments), latest.nextIndex, key));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the first of the newest segments to merge, the last segment if there is nothing to merge.
+     *
+     * The run grows backwards over the segments that hold no more sequences than the run, and over bigger ones
+     * while there would still be more than maxSegments segments. It stops at a segment that cannot be rebuilt.
+     */
+    private int mergeStart(List<Segment> segments) {
+        int from = segments.size() - 1;
+        if (from < 0 || segments.get(from).sources == null) {
+            return from;
+        }
+        int runSize = segments.get(from).size;
+        while (from > 0 && segments.get(from - 1).sources != null) {
+            Segment older = segments.get(from - 1);
+            if (older.size > runSize && from + 1 <= maxSegments) {
+                break;
+            }
+            from--;
+            runSize += older.size;
+        }
+        return from;
+    }
+
+    private Segment buildSegment(List<Source> sources, int firstIndex) throws IOException, InterruptedException {
+        SubstringMaxSearch tree = new SubstringMaxSearch(maxDepth);
+        int index = firstIndex;
+        for (Source source : sources) {
+            source.addTo(tree, index);
+            index += source.size;
+        }
+        tree.encrypt(key);
+        return new Segment(tree, firstIndex, index - firstIndex, sources);
+    }
+
+    private static void addSequences(SubstringMaxSearch tree, List<String> sequences, int firstIndex) {
+        for (int i = 0; i < sequences.size(); i++) {
+            tree.put(sequences.get(i), firstIndex + i);
+            tree.sufPosUpdate(sequences.get(i), firstIndex + i);
+        }
+    }
+
+    /**
+     * Publishes the version made of the segments of base plus the given one, and schedules a merge
+     * if the merge policy finds segments to merge. Must be called holding writeLock.
+     */
+    private Version publish(Version base, Segment segment) {
+        List<Segment> segments = new ArrayList<>(base.segments);
+        segments.add(segment);
+        Version next = new Version(base.number + 1, Collections.unmodifiableList(segments), base.nextIndex + segment.size, key);
+        current.set(next);
+        if (mergeStart(segments) < segments.size() - 1 && mergePending.compareAndSet(false, true)) {
+            merger.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mergePending.set(false);
+                    try {
+                        while (merge()) {
+                            // merging the newest segments can make the run before them mergeable
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Cannot merge segments: " + e);
+                    }
+                }
+            });
+        }
+        return next;
+    }
+
+    /**
+     * An encrypted tree over the <tt>size</tt> sequences numbered from firstIndex onwards
+     */
+    private static class Segment {
+
+        private final SubstringMaxSearch tree;
+        private final int firstIndex;
+        private final int size;
+        /**
+         * Where the sequences can be read again to rebuild the segment, null if they cannot
+         */
+        private final List<Source> sources;
+
+        Segment(SubstringMaxSearch tree, int firstIndex, int size, List<Source> sources) {
+            this.tree = tree;
+            this.firstIndex = firstIndex;
+            this.size = size;
+            this.sources = sources;
+        }
+    }
+
+    /**
+     * A run of <tt>size</tt> consecutive sequences: a file read with an ingestor, or sequences kept in memory
+     */
+    private static class Source {
+
+        private final File file;
+        private final SequenceIngestor ingestor;
+        private final List<String> sequences;
+        private final int size;
+
+        Source(File file, SequenceIngestor ingestor, List<String> sequences, int size) {
+            this.file = file;
+            this.ingestor = ingestor;
+            this.sequences = sequences;
+            this.size = size;
+        }
+
+        /**
+         * Adds the sequences to the tree, numbering them from <tt>firstIndex</tt> onwards.
+         */
+        void addTo(SubstringMaxSearch tree, int firstIndex) throws IOException, InterruptedException {
+            if (file != null) {
+                if (ingestor.ingest(file, tree, firstIndex) != size) {
+                    throw new IOException(file + " has changed since it was indexed");
+                }
+            } else {
+                addSequences(tree, sequences, firstIndex);
+            }
+        }
+    }
+
+    /**
+     * An immutable snapshot of the index.
+     */
+    public static class Version {
+
+        private final long number;
+        private final List<Segment> segments;
+        /**
+         * The index the next inserted sequence will get
+         */
+        private final int nextIndex;
+        private final String key;
+
+        private Version(long number, List<Segment> segments, int nextIndex, String key) {
+            this.number = number;
+            this.segments = segments;
+            this.nextIndex = nextIndex;
+            this.key = key;
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        public int getSequenceCount() {
+            return nextIndex - 1;
+        }
+
+        public int getSegmentCount() {
+            return segments.size();
+        }
+
+        /**
+         * Returns the indexes of all the sequences of this version that contain the given word.
+         * This is the trusted-server search of SubstringMaxSearch.decryptedSearch.
+         */
+        public Collection<Integer> search(String word) {
+            Set<Integer> results = new TreeSet<>();
+            for (Segment segment : segments) {
+                results.addAll(segment.tree.decryptedSearch(word, key));
+            }
+            return results;
+        }
+
+        /**
+         * Runs the set-maximal search on every segment and returns the seq;matchCount results of the segments
+         * that matched the longest part of the query, as a single tree over all the sequences would: the longest
+         * match is chosen over all the segments before the position filter is applied.
+         */
+        public ArrayList<String> encryptedSearch(String word, String position) throws IllegalAccessException, ClassNotFoundException, InstantiationException {
+            ArrayList<String> results = new ArrayList<>();
+            int longestMatch = 0;
+            for (Segment segment : segments) {
+                List<String> segmentResults = new ArrayList<>();
+                int matchCount = segment.tree.encryptedSearch(word, position, key, segmentResults);
+                if (matchCount > longestMatch) {
+                    results.clear();
+                    longestMatch = matchCount;
+                }
+                if (matchCount == longestMatch) {
+                    results.addAll(segmentResults);
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Returns the estimated cost of encryptedSearch, the sum of the estimates of the segments.
+         *
+         * @throws IllegalArgumentException if the query is longer than the paths of depth-bounded segments
+         */
+        public int estimateSearchCost(String query) {
+            int cost = 0;
+            for (Segment segment : segments) {
+                cost += segment.tree.estimateSearchCost(query);
+            }
+            return cost;
+        }
+    }
+}